@@ -1,9 +1,16 @@
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
 
 interface BasicBus
 {
     void publish(Event event);
     void subscribe(Class<?> eventType, Subscriber subscriber);
+    void subscribe(Class<?> eventType, Subscriber subscriber, boolean weak);
     void unsubscribe(Class<?> eventType, Subscriber subscriber);
 }
 
@@ -18,6 +25,7 @@ class Subscription
 {
     private Class<?> eventType;
     private Subscriber subscriber;
+    private WeakReference<Subscriber> reference;
 
     public Subscription(Class<?> eventType, Subscriber subscriber)
     {
@@ -25,6 +33,12 @@ class Subscription
         this.subscriber = subscriber;
     }
 
+    public Subscription(Class<?> eventType, WeakReference<Subscriber> reference)
+    {
+        this.eventType = eventType;
+        this.reference = reference;
+    }
+
     public Class<?> getEventType()
     {
         return eventType;
@@ -32,19 +46,129 @@ class Subscription
 
     public Subscriber getSubscriber()
     {
-        return subscriber;
+        return reference!=null ? reference.get() : subscriber;
+    }
+
+    public boolean isCleared()
+    {
+        return reference!=null && reference.get()==null;
+    }
+}
+
+class DeadLetter
+{
+    private final Event event;
+    private final Subscription subscription;
+    private final RuntimeException cause;
+
+    public DeadLetter(Event event, Subscription subscription, RuntimeException cause)
+    {
+        this.event=event;
+        this.subscription=subscription;
+        this.cause=cause;
+    }
+
+    public Event getEvent()
+    {
+        return event;
+    }
+
+    public Subscription getSubscription()
+    {
+        return subscription;
+    }
+
+    public RuntimeException getCause()
+    {
+        return cause;
+    }
+
+    @Override
+    public String toString()
+    {
+        return event.getClass().getName() + " -> " + subscription.getSubscriber() + " (" + cause + ")";
+    }
+}
+
+class DeadLetterQueue
+{
+    private final int capacity;
+    private final ArrayDeque<DeadLetter> letters = new ArrayDeque<>();
+    private long dropped;
+
+    public DeadLetterQueue(int capacity)
+    {
+        this.capacity=capacity;
+    }
+
+    public synchronized void add(DeadLetter letter)
+    {
+        if(letters.size()==capacity)
+        {
+            letters.pollFirst();
+            dropped++;
+        }
+        letters.addLast(letter);
+    }
+
+    public synchronized void removeIf(Predicate<DeadLetter> filter)
+    {
+        letters.removeIf(filter);
+    }
+
+    public synchronized List<DeadLetter> snapshot()
+    {
+        return new ArrayList<>(letters);
+    }
+
+    public synchronized List<DeadLetter> drain()
+    {
+        List<DeadLetter> drained = new ArrayList<>(letters);
+        letters.clear();
+        return drained;
+    }
+
+    public synchronized int size()
+    {
+        return letters.size();
+    }
+
+    public synchronized long getDropped()
+    {
+        return dropped;
     }
 }
 
 class BasicEventBusImpl implements BasicBus
 {
+    private static final int DEFAULT_DEAD_LETTER_CAPACITY = 1000;
     private static BasicEventBusImpl instance=null;
 
-    private final List<Subscription> subscriptions = new ArrayList<>();
+    private final BasicBus parent;
+    private final Executor executor;
+    private final Set<Subscription> subscriptions = new LinkedHashSet<>();
+    private final Set<Class<?>> forwardedTypes = new CopyOnWriteArraySet<>();
+    private final ReferenceQueue<Subscriber> collectedSubscribers = new ReferenceQueue<>();
+    private final Map<Reference<? extends Subscriber>, Subscription> weakSubscriptions = new HashMap<>();
+    private final DeadLetterQueue deadLetters = new DeadLetterQueue(DEFAULT_DEAD_LETTER_CAPACITY);
+
+    public BasicEventBusImpl()
+    {
+        this(null);
+    }
+
+    public BasicEventBusImpl(BasicBus parent)
+    {
+        this(parent, Runnable::run);
+    }
 
-    private BasicEventBusImpl() {}
+    public BasicEventBusImpl(BasicBus parent, Executor executor)
+    {
+        this.parent=parent;
+        this.executor=executor;
+    }
 
-    public static BasicEventBusImpl getInstance()
+    public static synchronized BasicEventBusImpl getInstance()
     {
         if(instance==null)
         {
@@ -56,35 +180,171 @@ class BasicEventBusImpl implements BasicBus
     @Override
     public void publish(Event event)
     {
+        for(Subscription subscription : matching(event))
+        {
+            deliver(subscription, event);
+        }
+
+        if(parent!=null && isForwarded(event.getClass()))
+        {
+            parent.publish(event);
+        }
+    }
+
+    public void publishAsync(Event event)
+    {
+        executor.execute(() -> publish(event));
+    }
+
+    private synchronized List<Subscription> matching(Event event)
+    {
+        purgeCollected();
+        List<Subscription> matches = new ArrayList<>();
         for(Subscription subscription : subscriptions)
         {
             if(subscription.getEventType().isAssignableFrom(event.getClass()))
             {
-                subscription.getSubscriber().inform(event);
+                matches.add(subscription);
+            }
+        }
+        return matches;
+    }
+
+    private void deliver(Subscription subscription, Event event)
+    {
+        Subscriber subscriber = subscription.getSubscriber();
+        if(subscriber==null)
+        {
+            return;
+        }
+        try
+        {
+            subscriber.inform(event);
+        }
+        catch(RuntimeException e)
+        {
+            deadLetters.add(new DeadLetter(event, subscription, e));
+            System.out.println("Dead-lettered " + event.getClass().getName() + " for " + subscriber + ": " + e);
+        }
+    }
+
+    public DeadLetterQueue getDeadLetters()
+    {
+        return deadLetters;
+    }
+
+    public int replayDeadLetters()
+    {
+        int replayed = 0;
+        for(DeadLetter letter : deadLetters.drain())
+        {
+            if(isSubscribed(letter.getSubscription()))
+            {
+                deliver(letter.getSubscription(), letter.getEvent());
+                replayed++;
             }
         }
+        return replayed;
+    }
+
+    private synchronized boolean isSubscribed(Subscription subscription)
+    {
+        return subscriptions.contains(subscription);
+    }
+
+    public void forward(Class<? extends Event> eventType)
+    {
+        if(parent==null)
+        {
+            throw new IllegalStateException("Bus has no parent to forward to");
+        }
+        forwardedTypes.add(eventType);
+    }
+
+    public void stopForwarding(Class<? extends Event> eventType)
+    {
+        forwardedTypes.remove(eventType);
+    }
+
+    private boolean isForwarded(Class<?> eventType)
+    {
+        for(Class<?> forwardedType : forwardedTypes)
+        {
+            if(forwardedType.isAssignableFrom(eventType))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void subscribe(Class<?> eventType, Subscriber subscriber)
     {
-        subscriptions.add(new Subscription(eventType, subscriber));
+        subscribe(eventType, subscriber, false);
     }
 
-    public void unsubscribe(Class<?> eventType, Subscriber subscriber)
+    public synchronized void subscribe(Class<?> eventType, Subscriber subscriber, boolean weak)
     {
-        subscriptions.removeIf(subscription -> subscription.getEventType().equals(eventType) && subscription.getSubscriber().equals(subscriber));
+        purgeCollected();
+        if(weak)
+        {
+            WeakReference<Subscriber> reference = new WeakReference<>(subscriber, collectedSubscribers);
+            Subscription subscription = new Subscription(eventType, reference);
+            subscriptions.add(subscription);
+            weakSubscriptions.put(reference, subscription);
+        }
+        else
+        {
+            subscriptions.add(new Subscription(eventType, subscriber));
+        }
+    }
+
+    public synchronized void unsubscribe(Class<?> eventType, Subscriber subscriber)
+    {
+        subscriptions.removeIf(subscription -> subscription.getEventType().equals(eventType) && subscriber.equals(subscription.getSubscriber()));
+        deadLetters.removeIf(letter -> !subscriptions.contains(letter.getSubscription()));
+        purgeCollected();
+    }
+
+    private void purgeCollected()
+    {
+        Reference<? extends Subscriber> reference = collectedSubscribers.poll();
+        if(reference==null)
+        {
+            return;
+        }
+
+        Set<Subscription> collected = new HashSet<>();
+        do
+        {
+            Subscription subscription = weakSubscriptions.remove(reference);
+            if(subscription!=null)
+            {
+                subscriptions.remove(subscription);
+                collected.add(subscription);
+            }
+        }
+        while((reference=collectedSubscribers.poll())!=null);
+        deadLetters.removeIf(letter -> collected.contains(letter.getSubscription()));
     }
 }
 
 class TemperatureSensor
 {
     private final String id;
+    private final BasicBus bus;
     private int temperature;
     private final Random random=new Random();
 
     public TemperatureSensor(String id)
+    {
+        this(id, BasicEventBusImpl.getInstance());
+    }
+
+    public TemperatureSensor(String id, BasicBus bus)
     {
         this.id=id;
+        this.bus=bus;
         this.temperature=random.nextInt(40);
     }
 
@@ -92,7 +352,7 @@ class TemperatureSensor
     {
         this.temperature=random.nextInt(40);
         System.out.println("Sensor " + id + " - New Temperature: " + temperature);
-        BasicEventBusImpl.getInstance().publish(new TemperatureEvent(this, temperature));
+        bus.publish(new TemperatureEvent(this, temperature));
     }
 }
 
@@ -121,12 +381,19 @@ class TemperatureEvent implements Event
 class WaterLevelSensor
 {
     private final String id;
+    private final BasicBus bus;
     private int waterLevel;
     private final Random random= new Random();
 
     public WaterLevelSensor(String id)
+    {
+        this(id, BasicEventBusImpl.getInstance());
+    }
+
+    public WaterLevelSensor(String id, BasicBus bus)
     {
         this.id=id;
+        this.bus=bus;
         this.waterLevel=random.nextInt(100);
     }
 
@@ -134,7 +401,7 @@ class WaterLevelSensor
     {
         this.waterLevel=random.nextInt(100);
         System.out.println("Sensor "+id+" - New Water Level: " + waterLevel);
-        BasicEventBusImpl.getInstance().publish(new WaterLevelEvent(this, waterLevel));
+        bus.publish(new WaterLevelEvent(this, waterLevel));
     }
 }
 
@@ -163,11 +430,18 @@ class WaterLevelEvent implements Event
 class NewsAgency
 {
     private final String name;
+    private final BasicBus bus;
     private final Random random=new Random();
 
     public NewsAgency(String name)
+    {
+        this(name, BasicEventBusImpl.getInstance());
+    }
+
+    public NewsAgency(String name, BasicBus bus)
     {
         this.name=name;
+        this.bus=bus;
     }
 
     public void publishNews(String category)
@@ -178,13 +452,13 @@ class NewsAgency
         switch(category.toLowerCase())
         {
             case "sports": 
-                BasicEventBusImpl.getInstance().publish(new SportsNewsEvent(this, newsContent));
+                bus.publish(new SportsNewsEvent(this, newsContent));
                 break;
             case "political": 
-                BasicEventBusImpl.getInstance().publish(new PoliticalNewsEvent(this, newsContent));
+                bus.publish(new PoliticalNewsEvent(this, newsContent));
                 break;
             case "culture": 
-                BasicEventBusImpl.getInstance().publish(new CultureNewsEvent(this, newsContent));
+                bus.publish(new CultureNewsEvent(this, newsContent));
                 break;
             default: 
                 System.out.println("Unknown category");
@@ -322,6 +596,7 @@ public class BasicEventBus
     public static void main(String[] args) 
     {
         BasicBus bus = BasicEventBusImpl.getInstance();
+        BasicBus newsBus = new BasicEventBusImpl();
 
         NumericDisplay numericDisplay= new NumericDisplay("Numeric Display");
         TextDisplay textDisplay=new TextDisplay("Text Display");
@@ -335,15 +610,15 @@ public class BasicEventBus
         TemperatureSensor temperatureSensor2=new TemperatureSensor("tS2");
         WaterLevelSensor waterLevelSensor1=new WaterLevelSensor("wS1");
 
-        NewsAgency proTV=new NewsAgency("ProTV");
-        NewsAgency digi24=new NewsAgency("Digi24");
+        NewsAgency proTV=new NewsAgency("ProTV", newsBus);
+        NewsAgency digi24=new NewsAgency("Digi24", newsBus);
 
         HumanSubscriber vasile =new HumanSubscriber("Vasile");
         HumanSubscriber ghita =new HumanSubscriber("Ghita");
 
-        bus.subscribe(SportsNewsEvent.class, ghita);
-        bus.subscribe(PoliticalNewsEvent.class, vasile);
-        bus.subscribe(SportsNewsEvent.class, vasile);
+        newsBus.subscribe(SportsNewsEvent.class, ghita);
+        newsBus.subscribe(PoliticalNewsEvent.class, vasile);
+        newsBus.subscribe(SportsNewsEvent.class, vasile);
 
         for(int i=0; i<5; i++)
         {
@@ -2,179 +2,1752 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 import java.lang.annotation.ElementType;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.Timespan;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 @Target({ElementType.METHOD})
 @Retention(RetentionPolicy.RUNTIME)
-@interface Subscribe{}
+@interface Subscribe
+{
+    String topic() default "";
+    ThreadMode threadMode() default ThreadMode.POSTING;
+    boolean sticky() default false;
+}
+
+enum ThreadMode
+{
+    POSTING,
+    MAIN,
+    BACKGROUND,
+    ASYNC
+}
+
+interface Event{}
+
+enum CircuitState
+{
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+}
+
+interface EventHandler<T extends Event> 
+{
+    void handle(T event);
+}
+
+class EventBusImpl 
+{
+    private static final int DEFAULT_DEAD_LETTER_CAPACITY = 1000;
+    private static final ScheduledExecutorService TIMEOUTS = timeoutScheduler();
+    private static final Object NO_KEY = new Object();
+    private static EventBusImpl instance = null;
+    private final String name;
+    private final EventBusImpl parent;
+    private final ExecutorService executor;
+    private volatile EventLoop mainLoop;
+    private volatile EventLoop backgroundLoop;
+    private final Map<Class<?>, List<Subscription>> subscribers = new ConcurrentHashMap<>();
+    private final Set<Class<?>> forwardedTypes = new CopyOnWriteArraySet<>();
+    private final TopicTrie topics = new TopicTrie();
+    private final AtomicLong correlationIds = new AtomicLong();
+    private final AtomicInteger handlerLabels = new AtomicInteger();
+    private final Map<Long, ReplyCollector<?>> pendingRequests = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Map<Object, AtomicReference<StampedEvent>>> stickyEvents = new ConcurrentHashMap<>();
+    private final AtomicLong stickySequence = new AtomicLong();
+    private final DeadLetterQueue deadLetters = new DeadLetterQueue(DEFAULT_DEAD_LETTER_CAPACITY);
+    private volatile RetryPolicy retryPolicy = RetryPolicy.none();
+    private volatile int failureThreshold = 5;
+    private volatile long circuitOpenNanos = TimeUnit.SECONDS.toNanos(30);
+    private final ReferenceQueue<Object> collectedSubscribers = new ReferenceQueue<>();
+    private final Map<Reference<?>, List<Subscription>> weakSubscriptions = new ConcurrentHashMap<>();
+
+    public EventBusImpl(String name)
+    {
+        this(name, null);
+    }
+
+    public EventBusImpl(String name, EventBusImpl parent)
+    {
+        this(name, parent, Executors.newCachedThreadPool(daemonThreads(name)));
+    }
+
+    public EventBusImpl(String name, EventBusImpl parent, ExecutorService executor)
+    {
+        this.name=name;
+        this.parent=parent;
+        this.executor=executor;
+    }
+
+    public static synchronized EventBusImpl getInstance() 
+    {
+        if(instance==null)
+        {
+            instance=new EventBusImpl("default");
+        }
+        return instance;
+    }
+
+    private static ScheduledExecutorService timeoutScheduler()
+    {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, daemonThreads("request-timeouts"));
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    private static ThreadFactory daemonThreads(String name)
+    {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> 
+        {
+            Thread thread = new Thread(runnable, name + "-bus-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public EventBusImpl getParent()
+    {
+        return parent;
+    }
+
+    public void forward(Class<? extends Event> eventType)
+    {
+        if(parent==null)
+        {
+            throw new IllegalStateException("Bus " + name + " has no parent to forward to");
+        }
+        forwardedTypes.add(eventType);
+    }
+
+    public void stopForwarding(Class<? extends Event> eventType)
+    {
+        forwardedTypes.remove(eventType);
+    }
+
+    public void postAsync(Event event)
+    {
+        executor.execute(() -> post(event));
+    }
+
+    public synchronized void shutdown()
+    {
+        executor.shutdown();
+        if(mainLoop!=null)
+        {
+            mainLoop.shutdown();
+        }
+        if(backgroundLoop!=null)
+        {
+            backgroundLoop.shutdown();
+        }
+    }
+
+    private EventLoop mainLoop()
+    {
+        EventLoop loop = mainLoop;
+        if(loop==null)
+        {
+            synchronized(this)
+            {
+                if(mainLoop==null)
+                {
+                    mainLoop=startLoop("main");
+                }
+                loop=mainLoop;
+            }
+        }
+        return loop;
+    }
+
+    private EventLoop backgroundLoop()
+    {
+        EventLoop loop = backgroundLoop;
+        if(loop==null)
+        {
+            synchronized(this)
+            {
+                if(backgroundLoop==null)
+                {
+                    backgroundLoop=startLoop("background");
+                }
+                loop=backgroundLoop;
+            }
+        }
+        return loop;
+    }
+
+    private EventLoop startLoop(String role)
+    {
+        if(executor.isShutdown())
+        {
+            throw new RejectedExecutionException("Bus " + name + " is shut down");
+        }
+        return new EventLoop(name + "-" + role);
+    }
+
+    public void register(Object subscriber)
+    {
+        register(subscriber, false);
+    }
+
+    public void register(Object subscriber, boolean weak)
+    {
+        purgeCollected();
+        WeakReference<Object> reference = weak ? new WeakReference<>(subscriber, collectedSubscribers) : null;
+        List<Subscription> registered = new ArrayList<>();
+        for(Method method : subscriber.getClass().getDeclaredMethods())
+        {
+            if(method.isAnnotationPresent(Subscribe.class))
+            {
+                Class<?>[] parameterTypes = method.getParameterTypes();
+                if(parameterTypes.length==1 && Event.class.isAssignableFrom(parameterTypes[0]))
+                {
+                    Subscribe annotation = method.getAnnotation(Subscribe.class);
+                    if(annotation.sticky() && !annotation.topic().isEmpty())
+                    {
+                        throw new IllegalArgumentException("Sticky delivery is not supported for topic subscription " + method);
+                    }
+
+                    Subscription subscription = weak ? new Subscription(reference, method) : new Subscription(subscriber, method);
+                    if(annotation.topic().isEmpty())
+                    {
+                        subscribers.computeIfAbsent(parameterTypes[0], type -> new CopyOnWriteArrayList<>()).add(subscription);
+                    }
+                    else
+                    {
+                        topics.add(annotation.topic(), subscription);
+                    }
+                    registered.add(subscription);
+
+                    if(annotation.sticky())
+                    {
+                        deliverSticky(subscription, parameterTypes[0]);
+                    }
+                }
+            }
+        }
+        if(weak && !registered.isEmpty())
+        {
+            weakSubscriptions.put(reference, registered);
+        }
+    }
+
+    private void deliverSticky(Subscription subscription, Class<?> eventType)
+    {
+        subscription.release(() -> cachedStickyEvents(eventType), event -> route(subscription, event));
+    }
+
+    private List<StampedEvent> cachedStickyEvents(Class<?> eventType)
+    {
+        List<StampedEvent> cached = new ArrayList<>();
+        for(Map.Entry<Class<?>, Map<Object, AtomicReference<StampedEvent>>> entry : stickyEvents.entrySet())
+        {
+            if(eventType.isAssignableFrom(entry.getKey()))
+            {
+                for(AtomicReference<StampedEvent> latest : entry.getValue().values())
+                {
+                    StampedEvent stamped = latest.get();
+                    if(stamped!=null)
+                    {
+                        cached.add(stamped);
+                    }
+                }
+            }
+        }
+        return cached;
+    }
+
+    public void postSticky(Event event)
+    {
+        postSticky(null, null, event);
+    }
+
+    public void postSticky(String topic, Object key, Event event)
+    {
+        Map<Object, AtomicReference<StampedEvent>> byKey = stickyEvents.get(event.getClass());
+        if(byKey==null)
+        {
+            byKey = stickyEvents.computeIfAbsent(event.getClass(), type -> new ConcurrentHashMap<>());
+        }
+        Object stickyKey = key!=null ? key : NO_KEY;
+        AtomicReference<StampedEvent> latest = byKey.get(stickyKey);
+        if(latest==null)
+        {
+            latest = byKey.computeIfAbsent(stickyKey, k -> new AtomicReference<>());
+        }
+        latest.set(new StampedEvent(event, stickySequence.incrementAndGet()));
+        post(topic, event);
+    }
+
+    public <T extends Event> T getStickyEvent(Class<T> eventType)
+    {
+        return getStickyEvent(eventType, null);
+    }
+
+    public <T extends Event> T getStickyEvent(Class<T> eventType, Object key)
+    {
+        Map<Object, AtomicReference<StampedEvent>> byKey = stickyEvents.get(eventType);
+        AtomicReference<StampedEvent> latest = byKey!=null ? byKey.get(key!=null ? key : NO_KEY) : null;
+        StampedEvent stamped = latest!=null ? latest.get() : null;
+        return stamped!=null ? eventType.cast(stamped.getEvent()) : null;
+    }
+
+    public boolean removeStickyEvent(Class<? extends Event> eventType, Object key)
+    {
+        Map<Object, AtomicReference<StampedEvent>> byKey = stickyEvents.get(eventType);
+        return byKey!=null && byKey.remove(key!=null ? key : NO_KEY)!=null;
+    }
+
+    public void removeAllStickyEvents()
+    {
+        stickyEvents.clear();
+    }
+
+    public void unregister(Object subscriber)
+    {
+        for(List<Subscription> subList : subscribers.values())
+        {
+            subList.removeIf(sub -> sub.getSubscriber()==subscriber);
+        }
+        topics.removeIf(sub -> sub.getSubscriber()==subscriber);
+        deadLetters.removeIf(letter -> letter.getSubscription().getSubscriber()==subscriber);
+        purgeCollected();
+    }
+
+    private void purgeCollected()
+    {
+        Reference<?> reference = collectedSubscribers.poll();
+        if(reference==null)
+        {
+            return;
+        }
+
+        Set<Subscription> collected = new HashSet<>();
+        do
+        {
+            List<Subscription> subs = weakSubscriptions.remove(reference);
+            if(subs!=null)
+            {
+                collected.addAll(subs);
+            }
+        }
+        while((reference=collectedSubscribers.poll())!=null);
+
+        Set<Class<?>> eventTypes = new HashSet<>();
+        Set<String> patterns = new HashSet<>();
+        for(Subscription sub : collected)
+        {
+            String topic = sub.getMethod().getAnnotation(Subscribe.class).topic();
+            if(topic.isEmpty())
+            {
+                eventTypes.add(sub.getEventType());
+            }
+            else
+            {
+                patterns.add(topic);
+            }
+        }
+        for(Class<?> eventType : eventTypes)
+        {
+            List<Subscription> subList = subscribers.get(eventType);
+            if(subList!=null)
+            {
+                subList.removeAll(collected);
+            }
+        }
+        for(String pattern : patterns)
+        {
+            topics.remove(pattern, collected::contains);
+        }
+        deadLetters.removeIf(letter -> collected.contains(letter.getSubscription()));
+    }
+
+    public void post(Event event)
+    {
+        post(null, event);
+    }
+
+    public void post(String topic, Event event)
+    {
+        PostRecord postRecord = DispatchProfiler.isEnabled() ? PostRecord.start(name, event, topic) : null;
+        purgeCollected();
+        Class<?> eventType = event.getClass();
+
+        ResolveRecord resolveRecord = postRecord!=null ? ResolveRecord.start(name, event) : null;
+        List<Subscription> subList = resolve(eventType);
+        if(resolveRecord!=null)
+        {
+            resolveRecord.finish(subList.size());
+        }
+
+        for(Subscription sub : subList)
+        {
+            deliver(sub, event);
+        }
+
+        if(topic!=null)
+        {
+            for(Subscription sub : topics.match(topic))
+            {
+                if(sub.accepts(event))
+                {
+                    deliver(sub, event);
+                }
+            }
+        }
+
+        System.out.println("Posting event: " + event.getClass().getName());
+        System.out.println("Subscribers found: " + subList.size());
+
+        if(postRecord!=null)
+        {
+            postRecord.finish(subList.size());
+        }
+
+        if(parent!=null && isForwarded(eventType))
+        {
+            parent.post(topic, event);
+        }
+    }
+
+    private List<Subscription> resolve(Class<?> eventType)
+    {
+        List<Subscription> subList = new ArrayList<>(subscribers.getOrDefault(eventType, Collections.emptyList()));
+        for(Map.Entry<Class<?>, List<Subscription>> entry : subscribers.entrySet())
+        {
+            if(entry.getKey().isAssignableFrom(eventType) && !entry.getKey().equals(eventType))
+            {
+                subList.addAll(entry.getValue());
+            }
+        }
+        return subList;
+    }
+
+    public <R> CompletableFuture<List<R>> request(RequestEvent<R> request, int replies, long timeout, TimeUnit unit)
+    {
+        return send(request, replies, false, timeout, unit);
+    }
+
+    public <R> CompletableFuture<R> requestFirst(RequestEvent<R> request, long timeout, TimeUnit unit)
+    {
+        return request(request, 1, timeout, unit).thenApply(replies -> replies.get(0));
+    }
+
+    public <R> CompletableFuture<List<R>> gather(RequestEvent<R> request, long timeout, TimeUnit unit)
+    {
+        return send(request, countRepliers(request.getClass()), true, timeout, unit);
+    }
+
+    private int countRepliers(Class<?> eventType)
+    {
+        purgeCollected();
+        int count = 0;
+        for(Subscription sub : resolve(eventType))
+        {
+            if(!sub.isCleared() && !sub.isCircuitOpen())
+            {
+                count++;
+            }
+        }
+        if(parent!=null && isForwarded(eventType))
+        {
+            count+=parent.countRepliers(eventType);
+        }
+        return count;
+    }
+
+    public boolean reply(long correlationId, Object value)
+    {
+        ReplyCollector<?> collector = pendingRequests.get(correlationId);
+        return collector!=null && collector.offerUnchecked(value);
+    }
+
+    private <R> CompletableFuture<List<R>> send(RequestEvent<R> request, int replies, boolean partialOnTimeout, long timeout, TimeUnit unit)
+    {
+        long correlationId = correlationIds.incrementAndGet();
+        ReplyCollector<R> collector = new ReplyCollector<>(correlationId, replies, partialOnTimeout);
+        CompletableFuture<List<R>> future = collector.getFuture();
+        if(future.isDone())
+        {
+            return future;
+        }
+
+        request.bind(correlationId, collector);
+        pendingRequests.put(correlationId, collector);
+        ScheduledFuture<?> expiry = TIMEOUTS.schedule(() -> expire(collector), timeout, unit);
+        future.whenComplete((result, error) -> 
+        {
+            pendingRequests.remove(correlationId);
+            expiry.cancel(false);
+        });
+
+        executor.execute(() -> post(request));
+        return future;
+    }
+
+    private void expire(ReplyCollector<?> collector)
+    {
+        try
+        {
+            executor.execute(collector::expire);
+        }
+        catch(RejectedExecutionException e)
+        {
+            collector.expire();
+        }
+    }
+
+    private void deliver(Subscription sub, Event event)
+    {
+        if(sub.isSticky() && sub.hold(event, stickySequence::get))
+        {
+            return;
+        }
+        route(sub, event);
+    }
+
+    private void route(Subscription sub, Event event)
+    {
+        long enqueuedAt = DispatchProfiler.isEnabled() ? System.nanoTime() : 0;
+        switch(sub.getThreadMode())
+        {
+            case MAIN:
+                deliverOn(mainLoop(), sub, event, enqueuedAt);
+                break;
+            case BACKGROUND:
+                deliverOn(backgroundLoop(), sub, event, enqueuedAt);
+                break;
+            case ASYNC:
+                executor.execute(() -> dispatch(sub, event, enqueuedAt));
+                break;
+            default:
+                dispatch(sub, event, enqueuedAt);
+        }
+    }
+
+    private void deliverOn(EventLoop loop, Subscription sub, Event event, long enqueuedAt)
+    {
+        if(loop.inLoop())
+        {
+            dispatch(sub, event, enqueuedAt);
+        }
+        else
+        {
+            loop.execute(() -> dispatch(sub, event, enqueuedAt));
+        }
+    }
+
+    private Executor executorFor(Subscription sub)
+    {
+        switch(sub.getThreadMode())
+        {
+            case MAIN:
+                return mainLoop();
+            case BACKGROUND:
+                return backgroundLoop();
+            default:
+                return executor;
+        }
+    }
+
+    private void dispatch(Subscription sub, Event event, long enqueuedAt)
+    {
+        if(!sub.tryAcquireDelivery())
+        {
+            deadLetters.recordShortCircuit();
+            return;
+        }
+        attempt(sub, event, 1, enqueuedAt);
+    }
+
+    private void attempt(Subscription sub, Event event, int attempt, long enqueuedAt)
+    {
+        DeliverRecord record = DispatchProfiler.isEnabled() ? DeliverRecord.start(name, sub, event, attempt, enqueuedAt) : null;
+        try
+        {
+            invoke(sub, event);
+            sub.recordSuccess();
+        }
+        catch(IllegalAccessException | InvocationTargetException | RuntimeException e)
+        {
+            if(record!=null)
+            {
+                record.failed=true;
+            }
+            Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+            sub.recordFailure(failureThreshold, circuitOpenNanos);
+
+            RetryPolicy policy = retryPolicy;
+            if(attempt<policy.getMaxAttempts() && !sub.isCircuitOpen())
+            {
+                scheduleRetry(sub, event, attempt, cause, policy.getDelayMillis(attempt));
+            }
+            else
+            {
+                deadLetter(sub, event, cause, attempt);
+            }
+        }
+        finally
+        {
+            if(record!=null)
+            {
+                record.finish();
+            }
+        }
+    }
+
+    private void scheduleRetry(Subscription sub, Event event, int attempt, Throwable cause, long delayMillis)
+    {
+        Executor retryExecutor = task -> 
+        {
+            try
+            {
+                executorFor(sub).execute(task);
+            }
+            catch(RejectedExecutionException e)
+            {
+                deadLetter(sub, event, cause, attempt);
+            }
+        };
+        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS, retryExecutor)
+            .execute(() -> attempt(sub, event, attempt+1, 0));
+    }
+
+    private void deadLetter(Subscription sub, Event event, Throwable cause, int attempts)
+    {
+        deadLetters.add(new DeadLetter(event, sub, cause, attempts));
+        System.out.println("Dead-lettered " + event.getClass().getName() + " for " + sub + ": " + cause);
+    }
+
+    private void invoke(Subscription sub, Event event) throws IllegalAccessException, InvocationTargetException
+    {
+        if(sub.getMethod()!=null)
+        {
+            Object target = sub.getSubscriber();
+            if(target==null)
+            {
+                return;
+            }
+            sub.getMethod().setAccessible(true);
+            sub.getMethod().invoke(target, event);
+        }
+        else if(sub.getHandler()!=null)
+        {
+            EventHandler<Event> handler=(EventHandler<Event>)sub.getHandler();
+            handler.handle(event);
+        }
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy)
+    {
+        this.retryPolicy=retryPolicy;
+    }
+
+    public void setCircuitBreaker(int failureThreshold, long openTime, TimeUnit unit)
+    {
+        this.failureThreshold=failureThreshold;
+        this.circuitOpenNanos=unit.toNanos(openTime);
+    }
+
+    public DeadLetterQueue getDeadLetters()
+    {
+        return deadLetters;
+    }
+
+    public int replayDeadLetters()
+    {
+        int replayed = 0;
+        for(DeadLetter letter : deadLetters.drain())
+        {
+            if(!isRegistered(letter.getSubscription()))
+            {
+                continue;
+            }
+            if(letter.getSubscription().isCircuitOpen())
+            {
+                deadLetters.add(letter);
+                continue;
+            }
+            deliver(letter.getSubscription(), letter.getEvent());
+            replayed++;
+        }
+        return replayed;
+    }
+
+    private boolean isRegistered(Subscription sub)
+    {
+        for(List<Subscription> subList : subscribers.values())
+        {
+            if(subList.contains(sub))
+            {
+                return true;
+            }
+        }
+        return topics.contains(sub);
+    }
+
+    private boolean isForwarded(Class<?> eventType)
+    {
+        for(Class<?> forwardedType : forwardedTypes)
+        {
+            if(forwardedType.isAssignableFrom(eventType))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public <T extends Event> void registerHandle(Class<T> eventType, EventHandler<T> handler)
+    {
+        registerHandle(eventType, handler, ThreadMode.POSTING);
+    }
+
+    public <T extends Event> void registerHandle(Class<T> eventType, EventHandler<T> handler, ThreadMode threadMode)
+    {
+        registerHandle(eventType, handler, threadMode, "handler:" + eventType.getName() + "/" + handlerLabels.incrementAndGet());
+    }
+
+    public <T extends Event> void registerHandle(Class<T> eventType, EventHandler<T> handler, ThreadMode threadMode, String label)
+    {
+        List<Subscription> subList = subscribers.computeIfAbsent(eventType, type -> new CopyOnWriteArrayList<>());
+        subList.add(new Subscription(handler, threadMode, label));
+        System.out.println("Registered via handler: " + handler.getClass().getName() + " for " + eventType.getName());
+    }
+
+    public void subscribeTopic(String pattern, EventHandler<Event> handler)
+    {
+        subscribeTopic(pattern, handler, ThreadMode.POSTING);
+    }
+
+    public void subscribeTopic(String pattern, EventHandler<Event> handler, ThreadMode threadMode)
+    {
+        subscribeTopic(pattern, handler, threadMode, "topic:" + pattern + "/" + handlerLabels.incrementAndGet());
+    }
+
+    public void subscribeTopic(String pattern, EventHandler<Event> handler, ThreadMode threadMode, String label)
+    {
+        topics.add(pattern, new Subscription(handler, threadMode, label));
+        System.out.println("Registered via handler: " + handler.getClass().getName() + " for topic " + pattern);
+    }
+
+    public void unsubscribeTopic(String pattern, EventHandler<Event> handler)
+    {
+        topics.remove(pattern, sub -> sub.getHandler()==handler);
+    }
+}
+
+class EventLoop implements Executor
+{
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile boolean sleeping;
+
+    public EventLoop(String name)
+    {
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean inLoop()
+    {
+        return Thread.currentThread()==thread;
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+        if(!running)
+        {
+            throw new RejectedExecutionException("Event loop " + thread.getName() + " is shut down");
+        }
+        tasks.offer(task);
+        if(!running && tasks.remove(task))
+        {
+            throw new RejectedExecutionException("Event loop " + thread.getName() + " is shut down");
+        }
+        if(sleeping)
+        {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public void shutdown()
+    {
+        running=false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run()
+    {
+        while(running || !tasks.isEmpty())
+        {
+            Runnable task = tasks.poll();
+            if(task==null)
+            {
+                sleeping=true;
+                if(running && tasks.isEmpty())
+                {
+                    LockSupport.park(this);
+                }
+                sleeping=false;
+                continue;
+            }
+
+            try
+            {
+                task.run();
+            }
+            catch(RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+}
+
+class DispatchProfiler
+{
+    private static volatile boolean enabled;
+    private static Recording recording;
+
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value)
+    {
+        enabled=value;
+    }
+
+    public static synchronized void startRecording(Path destination) throws IOException
+    {
+        if(recording!=null)
+        {
+            throw new IllegalStateException("Dispatch recording already running");
+        }
+        recording = new Recording();
+        recording.setName("event-bus-dispatch");
+        recording.enable(PostRecord.class).withoutThreshold().withoutStackTrace();
+        recording.enable(ResolveRecord.class).withoutThreshold().withoutStackTrace();
+        recording.enable(DeliverRecord.class).withoutThreshold().withoutStackTrace();
+        recording.setDestination(destination);
+        recording.start();
+        enabled=true;
+    }
+
+    public static synchronized void stopRecording()
+    {
+        if(recording==null)
+        {
+            return;
+        }
+        enabled=false;
+        recording.stop();
+        recording.close();
+        recording=null;
+    }
+}
+
+@Name(PostRecord.NAME)
+@Label("Event Bus Post")
+@Category("Event Bus")
+class PostRecord extends jdk.jfr.Event
+{
+    static final String NAME = "eventbus.Post";
+
+    @Label("Bus")
+    String bus;
+
+    @Label("Event Class")
+    Class<?> eventClass;
+
+    @Label("Topic")
+    String topic;
+
+    @Label("Subscribers")
+    int subscribers;
+
+    static PostRecord start(String bus, Event event, String topic)
+    {
+        PostRecord record = new PostRecord();
+        record.bus=bus;
+        record.eventClass=event.getClass();
+        record.topic=topic;
+        record.begin();
+        return record;
+    }
+
+    void finish(int subscribers)
+    {
+        this.subscribers=subscribers;
+        commit();
+    }
+}
+
+@Name(ResolveRecord.NAME)
+@Label("Event Bus Resolve")
+@Category("Event Bus")
+class ResolveRecord extends jdk.jfr.Event
+{
+    static final String NAME = "eventbus.Resolve";
+
+    @Label("Bus")
+    String bus;
+
+    @Label("Event Class")
+    Class<?> eventClass;
+
+    @Label("Subscribers")
+    int subscribers;
+
+    static ResolveRecord start(String bus, Event event)
+    {
+        ResolveRecord record = new ResolveRecord();
+        record.bus=bus;
+        record.eventClass=event.getClass();
+        record.begin();
+        return record;
+    }
+
+    void finish(int subscribers)
+    {
+        this.subscribers=subscribers;
+        commit();
+    }
+}
+
+@Name(DeliverRecord.NAME)
+@Label("Event Bus Deliver")
+@Category("Event Bus")
+class DeliverRecord extends jdk.jfr.Event
+{
+    static final String NAME = "eventbus.Deliver";
+
+    @Label("Bus")
+    String bus;
+
+    @Label("Event Class")
+    Class<?> eventClass;
+
+    @Label("Subscriber")
+    String subscriber;
+
+    @Label("Thread Mode")
+    String threadMode;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Queue Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueWait;
+
+    @Label("Failed")
+    boolean failed;
+
+    static DeliverRecord start(String bus, Subscription sub, Event event, int attempt, long enqueuedAt)
+    {
+        DeliverRecord record = new DeliverRecord();
+        record.begin();
+        record.bus=bus;
+        record.eventClass=event.getClass();
+        record.subscriber=sub.toString();
+        record.threadMode=sub.getThreadMode().name();
+        record.attempt=attempt;
+        record.queueWait=enqueuedAt!=0 ? System.nanoTime()-enqueuedAt : 0;
+        return record;
+    }
+
+    void finish()
+    {
+        commit();
+    }
+}
+
+class DispatchProfileAnalyzer
+{
+    private static final int DEFAULT_LIMIT = 10;
+
+    private static class Stats
+    {
+        private long count;
+        private long failures;
+        private long totalNanos;
+        private long maxNanos;
+        private long totalQueueNanos;
+
+        private void add(long nanos, long queueNanos, boolean failed)
+        {
+            count++;
+            totalNanos+=nanos;
+            maxNanos=Math.max(maxNanos, nanos);
+            totalQueueNanos+=queueNanos;
+            if(failed)
+            {
+                failures++;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length==0)
+        {
+            System.out.println("Usage: java DispatchProfileAnalyzer <recording.jfr> [limit]");
+            return;
+        }
+        int limit = args.length>1 ? Integer.parseInt(args[1]) : DEFAULT_LIMIT;
+
+        Map<String, Stats> bySubscriber = new HashMap<>();
+        Map<String, Stats> byEventClass = new HashMap<>();
+        Map<String, Stats> byResolve = new HashMap<>();
+
+        for(RecordedEvent recorded : RecordingFile.readAllEvents(Path.of(args[0])))
+        {
+            String type = recorded.getEventType().getName();
+            long nanos = recorded.getDuration().toNanos();
+            if(type.equals(DeliverRecord.NAME))
+            {
+                long queueNanos = recorded.getDuration("queueWait").toNanos();
+                boolean failed = recorded.getBoolean("failed");
+                bySubscriber.computeIfAbsent(recorded.getString("subscriber"), key -> new Stats()).add(nanos, queueNanos, failed);
+            }
+            else if(type.equals(PostRecord.NAME))
+            {
+                byEventClass.computeIfAbsent(recorded.getClass("eventClass").getName(), key -> new Stats()).add(nanos, 0, false);
+            }
+            else if(type.equals(ResolveRecord.NAME))
+            {
+                byResolve.computeIfAbsent(recorded.getClass("eventClass").getName(), key -> new Stats()).add(nanos, 0, false);
+            }
+        }
+
+        print("Slowest subscribers", bySubscriber, limit);
+        print("Slowest event types (post)", byEventClass, limit);
+        print("Slowest event types (resolve)", byResolve, limit);
+    }
+
+    private static void print(String title, Map<String, Stats> stats, int limit)
+    {
+        System.out.println(title + ":");
+        List<Map.Entry<String, Stats>> entries = new ArrayList<>(stats.entrySet());
+        entries.sort((a, b) -> Long.compare(b.getValue().totalNanos, a.getValue().totalNanos));
+        for(Map.Entry<String, Stats> entry : entries.subList(0, Math.min(limit, entries.size())))
+        {
+            Stats s = entry.getValue();
+            System.out.printf("  %-60s count=%d total=%.3fms avg=%.1fus max=%.1fus queue-avg=%.1fus failures=%d%n",
+                entry.getKey(), s.count, s.totalNanos/1e6, s.totalNanos/1e3/s.count, s.maxNanos/1e3, s.totalQueueNanos/1e3/s.count, s.failures);
+        }
+        System.out.println();
+    }
+}
+
+class RetryPolicy
+{
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+
+    private RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis)
+    {
+        this.maxAttempts=maxAttempts;
+        this.initialDelayMillis=initialDelayMillis;
+        this.maxDelayMillis=maxDelayMillis;
+    }
+
+    public static RetryPolicy none()
+    {
+        return new RetryPolicy(1, 0, 0);
+    }
+
+    public static RetryPolicy exponential(int maxAttempts, long initialDelayMillis, long maxDelayMillis)
+    {
+        if(maxAttempts<1)
+        {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        return new RetryPolicy(maxAttempts, initialDelayMillis, maxDelayMillis);
+    }
+
+    public int getMaxAttempts()
+    {
+        return maxAttempts;
+    }
+
+    public long getDelayMillis(int attempt)
+    {
+        long delay = initialDelayMillis << Math.min(attempt-1, 30);
+        return Math.min(delay, maxDelayMillis);
+    }
+}
+
+class DeadLetter
+{
+    private final Event event;
+    private final Subscription subscription;
+    private final Throwable cause;
+    private final int attempts;
+    private final long timestamp;
+
+    public DeadLetter(Event event, Subscription subscription, Throwable cause, int attempts)
+    {
+        this.event=event;
+        this.subscription=subscription;
+        this.cause=cause;
+        this.attempts=attempts;
+        this.timestamp=System.currentTimeMillis();
+    }
+
+    public Event getEvent()
+    {
+        return event;
+    }
+
+    public Subscription getSubscription()
+    {
+        return subscription;
+    }
+
+    public Throwable getCause()
+    {
+        return cause;
+    }
+
+    public int getAttempts()
+    {
+        return attempts;
+    }
+
+    public long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    @Override
+    public String toString()
+    {
+        return event.getClass().getName() + " -> " + subscription + " (" + cause + ", attempts: " + attempts + ")";
+    }
+}
+
+class DeadLetterQueue
+{
+    private final int capacity;
+    private final ArrayDeque<DeadLetter> letters = new ArrayDeque<>();
+    private long dropped;
+    private long shortCircuited;
+
+    public DeadLetterQueue(int capacity)
+    {
+        this.capacity=capacity;
+    }
+
+    public synchronized void add(DeadLetter letter)
+    {
+        if(letters.size()==capacity)
+        {
+            letters.pollFirst();
+            dropped++;
+        }
+        letters.addLast(letter);
+    }
+
+    public synchronized void recordShortCircuit()
+    {
+        shortCircuited++;
+    }
+
+    public synchronized void removeIf(Predicate<DeadLetter> filter)
+    {
+        letters.removeIf(filter);
+    }
+
+    public synchronized List<DeadLetter> snapshot()
+    {
+        return new ArrayList<>(letters);
+    }
+
+    public synchronized List<DeadLetter> drain()
+    {
+        List<DeadLetter> drained = new ArrayList<>(letters);
+        letters.clear();
+        return drained;
+    }
+
+    public synchronized int size()
+    {
+        return letters.size();
+    }
+
+    public synchronized long getDropped()
+    {
+        return dropped;
+    }
+
+    public synchronized long getShortCircuited()
+    {
+        return shortCircuited;
+    }
+}
+
+abstract class RequestEvent<R> implements Event
+{
+    private volatile long correlationId;
+    private final AtomicReference<ReplyCollector<R>> collector = new AtomicReference<>();
+
+    void bind(long correlationId, ReplyCollector<R> next)
+    {
+        ReplyCollector<R> current = collector.get();
+        if((current!=null && !current.getFuture().isDone()) || !collector.compareAndSet(current, next))
+        {
+            throw new IllegalStateException("Request " + getClass().getName() + " is already pending as " + this.correlationId);
+        }
+        this.correlationId=correlationId;
+    }
+
+    public long getCorrelationId()
+    {
+        return correlationId;
+    }
+
+    public boolean reply(R value)
+    {
+        ReplyCollector<R> target = collector.get();
+        return target!=null && target.offer(value);
+    }
+}
+
+class ReplyCollector<R>
+{
+    private final long correlationId;
+    private final int expected;
+    private final boolean partialOnTimeout;
+    private final List<R> replies = new ArrayList<>();
+    private final CompletableFuture<List<R>> future = new CompletableFuture<>();
+
+    public ReplyCollector(long correlationId, int expected, boolean partialOnTimeout)
+    {
+        this.correlationId=correlationId;
+        this.expected=expected;
+        this.partialOnTimeout=partialOnTimeout;
+        if(expected<=0)
+        {
+            future.complete(Collections.emptyList());
+        }
+    }
+
+    public CompletableFuture<List<R>> getFuture()
+    {
+        return future;
+    }
+
+    public boolean offer(R value)
+    {
+        List<R> result;
+        synchronized(replies)
+        {
+            if(future.isDone())
+            {
+                return false;
+            }
+            replies.add(value);
+            if(replies.size()<expected)
+            {
+                return true;
+            }
+            result = new ArrayList<>(replies);
+        }
+        future.complete(result);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    public boolean offerUnchecked(Object value)
+    {
+        return offer((R) value);
+    }
+
+    public void expire()
+    {
+        List<R> result;
+        synchronized(replies)
+        {
+            if(future.isDone())
+            {
+                return;
+            }
+            result = new ArrayList<>(replies);
+        }
+        if(partialOnTimeout)
+        {
+            future.complete(result);
+        }
+        else
+        {
+            future.completeExceptionally(new TimeoutException("Request " + correlationId + " received " + result.size() + " of " + expected + " replies"));
+        }
+    }
+}
+
+class TopicTrie
+{
+    private static final String SINGLE_WILDCARD = "*";
+    private static final String MULTI_WILDCARD = "#";
+
+    private final Node root = new Node();
+
+    private static class Node
+    {
+        private final Map<String, Node> children = new ConcurrentHashMap<>();
+        private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+        private boolean isEmpty()
+        {
+            return subscriptions.isEmpty() && children.isEmpty();
+        }
+    }
+
+    public synchronized void add(String pattern, Subscription subscription)
+    {
+        Node node = root;
+        for(String segment : split(pattern))
+        {
+            node = node.children.computeIfAbsent(segment, key -> new Node());
+        }
+        node.subscriptions.add(subscription);
+    }
+
+    public synchronized void remove(String pattern, Predicate<Subscription> filter)
+    {
+        String[] segments = split(pattern);
+        Node[] path = new Node[segments.length+1];
+        path[0]=root;
+        for(int i=0; i<segments.length; i++)
+        {
+            path[i+1]=path[i].children.get(segments[i]);
+            if(path[i+1]==null)
+            {
+                return;
+            }
+        }
+        path[segments.length].subscriptions.removeIf(filter);
+
+        for(int i=segments.length; i>0 && path[i].isEmpty(); i--)
+        {
+            path[i-1].children.remove(segments[i-1]);
+        }
+    }
+
+    public synchronized void removeIf(Predicate<Subscription> filter)
+    {
+        removeIf(root, filter);
+    }
+
+    private boolean removeIf(Node node, Predicate<Subscription> filter)
+    {
+        node.subscriptions.removeIf(filter);
+        node.children.values().removeIf(child -> removeIf(child, filter));
+        return node.isEmpty();
+    }
+
+    public int nodeCount()
+    {
+        return nodeCount(root);
+    }
+
+    private int nodeCount(Node node)
+    {
+        int count = 1;
+        for(Node child : node.children.values())
+        {
+            count+=nodeCount(child);
+        }
+        return count;
+    }
+
+    public boolean contains(Subscription subscription)
+    {
+        return contains(root, subscription);
+    }
+
+    private boolean contains(Node node, Subscription subscription)
+    {
+        if(node.subscriptions.contains(subscription))
+        {
+            return true;
+        }
+        for(Node child : node.children.values())
+        {
+            if(contains(child, subscription))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<Subscription> match(String topic)
+    {
+        Set<Subscription> matches = new LinkedHashSet<>();
+        collect(root, split(topic), 0, matches);
+        return matches;
+    }
+
+    private void collect(Node node, String[] segments, int index, Set<Subscription> matches)
+    {
+        Node multi = node.children.get(MULTI_WILDCARD);
+        if(multi!=null)
+        {
+            for(int i=index; i<=segments.length; i++)
+            {
+                collect(multi, segments, i, matches);
+            }
+        }
+
+        if(index==segments.length)
+        {
+            matches.addAll(node.subscriptions);
+            return;
+        }
+
+        Node exact = node.children.get(segments[index]);
+        if(exact!=null)
+        {
+            collect(exact, segments, index+1, matches);
+        }
+
+        Node single = node.children.get(SINGLE_WILDCARD);
+        if(single!=null)
+        {
+            collect(single, segments, index+1, matches);
+        }
+    }
+
+    public static String segment(String value)
+    {
+        char[] chars = value.trim().toCharArray();
+        if(chars.length==0)
+        {
+            return "_";
+        }
+        for(int i=0; i<chars.length; i++)
+        {
+            if(chars[i]=='.' || chars[i]=='*' || chars[i]=='#' || Character.isWhitespace(chars[i]))
+            {
+                chars[i]='_';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static String[] split(String topic)
+    {
+        String[] segments = topic.split("\\.", -1);
+        for(String segment : segments)
+        {
+            if(segment.isEmpty())
+            {
+                throw new IllegalArgumentException("Empty segment in topic: " + topic);
+            }
+        }
+        return segments;
+    }
+}
+
+
+class Subscription
+{
+    private Object subscriber;
+    private WeakReference<Object> reference;
+    private Method method;
+    private EventHandler<?> handler;
+    private Class<?> eventType;
+    private ThreadMode threadMode = ThreadMode.POSTING;
+    private String label;
+    private boolean sticky;
+    private volatile boolean holding;
+    private List<StampedEvent> held;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicReference<CircuitState> circuit = new AtomicReference<>(CircuitState.CLOSED);
+    private volatile long openUntil;
+
+    public Subscription(Object subscriber, Method method)
+    {
+        this.subscriber = subscriber;
+        init(subscriber, method);
+    }
 
-interface Event{}
+    public Subscription(WeakReference<Object> reference, Method method)
+    {
+        this.reference = reference;
+        init(reference.get(), method);
+    }
 
-interface EventHandler<T extends Event> 
-{
-    void handle(T event);
-}
+    public <T extends Event> Subscription(EventHandler<T> handler)
+    {
+        this(handler, ThreadMode.POSTING, "handler@" + Integer.toHexString(System.identityHashCode(handler)));
+    }
 
-class EventBusImpl 
-{
-    private static EventBusImpl instance = null;
-    private final HashMap<Class<?>, List<Subscription>> subscribers = new HashMap<>();
+    public <T extends Event> Subscription(EventHandler<T> handler, ThreadMode threadMode, String label)
+    {
+        this.handler=handler;
+        this.threadMode=threadMode;
+        this.label=label;
+    }
+
+    private void init(Object target, Method method)
+    {
+        Subscribe annotation = method.getAnnotation(Subscribe.class);
+        this.method=method;
+        this.eventType=method.getParameterTypes()[0];
+        this.label=methodLabel(target, method);
+        this.threadMode=annotation.threadMode();
+        this.sticky=annotation.sticky();
+        if(sticky)
+        {
+            this.held=new ArrayList<>();
+            this.holding=true;
+        }
+    }
 
-    private EventBusImpl() {}
+    private static String methodLabel(Object subscriber, Method method)
+    {
+        return subscriber.getClass().getName() + "@" + Integer.toHexString(System.identityHashCode(subscriber)) + "." + method.getName();
+    }
 
-    public static EventBusImpl getInstance() 
+    public Method getMethod()
     {
-        if(instance==null)
+        return method;
+    }
+
+    public Object getSubscriber()
+    {
+        return reference!=null ? reference.get() : subscriber;
+    }
+
+    public Class<?> getEventType()
+    {
+        return eventType;
+    }
+
+    public boolean isCleared()
+    {
+        return reference!=null && reference.get()==null;
+    }
+
+    public boolean accepts(Event event)
+    {
+        return eventType==null || eventType.isInstance(event);
+    }
+
+    public boolean tryAcquireDelivery()
+    {
+        CircuitState state = circuit.get();
+        if(state==CircuitState.CLOSED)
         {
-            instance=new EventBusImpl();
+            return true;
         }
-        return instance;
+        return state==CircuitState.OPEN && System.nanoTime()-openUntil>=0 && circuit.compareAndSet(CircuitState.OPEN, CircuitState.HALF_OPEN);
     }
 
-    public void register(Object subscriber)
+    public boolean isCircuitOpen()
     {
-        for(Method method : subscriber.getClass().getDeclaredMethods())
+        CircuitState state = circuit.get();
+        return state==CircuitState.HALF_OPEN || (state==CircuitState.OPEN && System.nanoTime()-openUntil<0);
+    }
+
+    public void recordSuccess()
+    {
+        if(consecutiveFailures.get()!=0 || circuit.get()!=CircuitState.CLOSED)
         {
-            if(method.isAnnotationPresent(Subscribe.class))
-            {
-                Class<?>[] parameterTypes = method.getParameterTypes();
-                if(parameterTypes.length==1 && Event.class.isAssignableFrom(parameterTypes[0]))
-                {
-                    List<Subscription> subList = subscribers.get(parameterTypes[0]);
-                    if(subList==null)
-                    {
-                        subList=new ArrayList<>();
-                        subscribers.put(parameterTypes[0], subList);
-                    }
-                    subList.add(new Subscription(subscriber, method));
-                }
-            }
+            consecutiveFailures.set(0);
+            circuit.set(CircuitState.CLOSED);
         }
     }
 
-    public void post(Event event)
+    public void recordFailure(int failureThreshold, long openNanos)
     {
-        Class<?> eventType = event.getClass();
-        List<Subscription> subList = new ArrayList<>();
-        subList.addAll(subscribers.getOrDefault(eventType, new ArrayList<>()));
+        int failures = consecutiveFailures.incrementAndGet();
+        if(failures>=failureThreshold || circuit.get()==CircuitState.HALF_OPEN)
+        {
+            openUntil=System.nanoTime()+openNanos;
+            circuit.set(CircuitState.OPEN);
+        }
+    }
 
-        for(Map.Entry<Class<?>, List<Subscription>> entry : subscribers.entrySet())
+    @Override
+    public String toString()
+    {
+        return label;
+    }
+
+    public EventHandler<?> getHandler() 
+    {
+        return handler;
+    }
+
+    public ThreadMode getThreadMode()
+    {
+        return threadMode;
+    }
+
+    public boolean isSticky()
+    {
+        return sticky;
+    }
+
+    public boolean hold(Event event, LongSupplier sequence)
+    {
+        if(!holding)
         {
-            if(entry.getKey().isAssignableFrom(eventType) && !entry.getKey().equals(eventType))
+            return false;
+        }
+        synchronized(this)
+        {
+            if(!holding)
             {
-                subList.addAll(entry.getValue());
+                return false;
             }
+            held.add(new StampedEvent(event, sequence.getAsLong()));
+            return true;
         }
-        
-        if(subList!=null)
+    }
+
+    public synchronized void release(Supplier<List<StampedEvent>> cached, Consumer<Event> delivery)
+    {
+        List<StampedEvent> replay = new ArrayList<>();
+        for(StampedEvent stamped : cached.get())
         {
-            for(Subscription sub : subList)
+            if(!isHeld(stamped.getEvent()))
             {
-                if(sub.getMethod()!=null)
-                {
-                    try
-                    {
-                        sub.getMethod().setAccessible(true);
-                        sub.getMethod().invoke(sub.getSubscriber(), event);
-                    }
-                    catch(IllegalAccessException | InvocationTargetException e)
-                    {
-                        e.printStackTrace();
-                    }
-                }
-                else if(sub.getHandler()!=null)
-                {
-                    EventHandler<Event> handler=(EventHandler<Event>)sub.getHandler();
-                    if(handler!=null)
-                    {
-                        handler.handle(event);
-                    }
-                }
+                replay.add(stamped);
             }
         }
-        
+        replay.sort(Comparator.comparingLong(StampedEvent::getSequence));
 
-        for(Map.Entry<Class<?>, List<Subscription>> entry : subscribers.entrySet())
+        int next = 0;
+        while(!held.isEmpty() || next<replay.size())
         {
-            if(entry.getKey().isAssignableFrom(eventType) && !entry.getKey().equals(eventType))
+            List<StampedEvent> batch = new ArrayList<>(held);
+            held.clear();
+            for(StampedEvent live : batch)
             {
-                for(Subscription sub : entry.getValue())
+                while(next<replay.size() && replay.get(next).getSequence()<=live.getSequence())
                 {
-                    try
-                    {
-                        sub.getMethod().setAccessible(true);
-                        sub.getMethod().invoke(sub.getSubscriber(), event);
-                    }
-                    catch(IllegalAccessException | InvocationTargetException e)
-                    {
-                        e.printStackTrace();
-                    }
+                    delivery.accept(replay.get(next++).getEvent());
                 }
+                delivery.accept(live.getEvent());
+            }
+            while(next<replay.size())
+            {
+                delivery.accept(replay.get(next++).getEvent());
             }
         }
-
-        System.out.println("Posting event: " + event.getClass().getName());
-        System.out.println("Subscribers found: " + subList.size());
+        held=null;
+        holding=false;
     }
 
-    public <T extends Event> void registerHandle(Class<T> eventType, EventHandler<T> handler)
+    private boolean isHeld(Event event)
     {
-        List<Subscription> subList = subscribers.get(eventType);
-        if(subList==null)
+        for(StampedEvent heldEvent : held)
         {
-            subList=new ArrayList<>();
-            subscribers.put(eventType, subList);
+            if(heldEvent.getEvent()==event)
+            {
+                return true;
+            }
         }
-        subList.add(new Subscription(handler));
-        System.out.println("Registered via handler: " + handler.getClass().getName() + " for " + eventType.getName());
+        return false;
     }
 }
 
-
-class Subscription
+class StampedEvent
 {
-    private Object subscriber;
-    private Method method;
-    private EventHandler<?> handler;
-
-    public Subscription(Object subscriber, Method method)
-    {
-        this.subscriber = subscriber;
-        this.method=method;
-    }
-
-    public <T extends Event> Subscription(EventHandler<T> handler)
-    {
-        this.handler=handler;
-    }
+    private final Event event;
+    private final long sequence;
 
-    public Method getMethod()
+    public StampedEvent(Event event, long sequence)
     {
-        return method;
+        this.event=event;
+        this.sequence=sequence;
     }
 
-    public Object getSubscriber()
+    public Event getEvent()
     {
-        return subscriber;
+        return event;
     }
 
-    public EventHandler<?> getHandler() 
+    public long getSequence()
     {
-        return handler;
+        return sequence;
     }
 }
 
 class TemperatureSensor
 {
     private final String id;
+    private final String topic;
+    private final EventBusImpl bus;
     private int temperature;
     private final Random random=new Random();
 
     public TemperatureSensor(String id)
+    {
+        this(id, EventBusImpl.getInstance());
+    }
+
+    public TemperatureSensor(String id, EventBusImpl bus)
     {
         this.id=id;
+        this.topic="sensors.temperature." + TopicTrie.segment(id);
+        this.bus=bus;
         this.temperature=random.nextInt(40);
     }
 
@@ -182,7 +1755,7 @@ class TemperatureSensor
     {
         this.temperature=random.nextInt(40);
         System.out.println("Sensor " + id + " - New Temperature: " + temperature);
-        EventBusImpl.getInstance().post(new TemperatureEvent(this, temperature));
+        bus.postSticky(topic, id, new TemperatureEvent(this, temperature));
     }
 }
 
@@ -211,12 +1784,21 @@ class TemperatureEvent implements Event
 class WaterLevelSensor
 {
     private final String id;
+    private final String topic;
+    private final EventBusImpl bus;
     private int waterLevel;
     private final Random random= new Random();
 
     public WaterLevelSensor(String id)
+    {
+        this(id, EventBusImpl.getInstance());
+    }
+
+    public WaterLevelSensor(String id, EventBusImpl bus)
     {
         this.id=id;
+        this.topic="sensors.water." + TopicTrie.segment(id);
+        this.bus=bus;
         this.waterLevel=random.nextInt(100);
     }
 
@@ -224,7 +1806,7 @@ class WaterLevelSensor
     {
         this.waterLevel=random.nextInt(100);
         System.out.println("Sensor "+id+" - New Water Level: " + waterLevel);
-        EventBusImpl.getInstance().post(new WaterLevelEvent(this, waterLevel));
+        bus.postSticky(topic, id, new WaterLevelEvent(this, waterLevel));
     }
 }
 
@@ -253,31 +1835,49 @@ class WaterLevelEvent implements Event
 class NewsAgency
 {
     private final String name;
+    private final String agencySegment;
+    private final EventBusImpl bus;
     private final Random random=new Random();
 
     public NewsAgency(String name)
+    {
+        this(name, EventBusImpl.getInstance());
+    }
+
+    public NewsAgency(String name, EventBusImpl bus)
     {
         this.name=name;
+        this.agencySegment=TopicTrie.segment(name);
+        this.bus=bus;
     }
 
     public void publishNews(String category)
     {
         String[] headlines={ "Breaking news!", "Big update!", "Shocking event!", "Important announcement!"};
         String newsContent=headlines[random.nextInt(headlines.length)];
+        String lowerCategory=category.toLowerCase();
+        String topic="news." + TopicTrie.segment(lowerCategory) + "." + agencySegment;
 
-        switch(category.toLowerCase())
+        switch(lowerCategory)
         {
             case "sports": 
-                EventBusImpl.getInstance().post(new SportsNewsEvent(this, newsContent));
+                bus.post(topic, new SportsNewsEvent(this, newsContent));
                 break;
             case "political": 
-                EventBusImpl.getInstance().post(new PoliticalNewsEvent(this, newsContent));
+                bus.post(topic, new PoliticalNewsEvent(this, newsContent));
                 break;
             case "culture": 
-                EventBusImpl.getInstance().post(new CultureNewsEvent(this, newsContent));
+                bus.post(topic, new CultureNewsEvent(this, newsContent));
                 break;
             default: 
-                System.out.println("Unknown category");
+                if(category.isBlank())
+                {
+                    System.out.println("Unknown category");
+                }
+                else
+                {
+                    bus.post(topic, new TopicNewsEvent(this, category, newsContent));
+                }
         }
 
         System.out.println(getName() + " published " + category.toUpperCase() + " news: " + newsContent);
@@ -335,6 +1935,18 @@ class CultureNewsEvent extends NewsEvent
     }
 }
 
+class TopicNewsEvent extends NewsEvent
+{
+    public TopicNewsEvent(NewsAgency agency, String category, String newsContent)
+    {
+        super(agency, "["+category+"] "+newsContent);
+    }
+}
+
+class StatusRequest extends RequestEvent<String>
+{
+}
+
 class NumericDisplay
 {
     private final String name;
@@ -344,13 +1956,13 @@ class NumericDisplay
         this.name=name;
     }
 
-    @Subscribe
+    @Subscribe(threadMode = ThreadMode.MAIN, sticky = true)
     public void handleTemperatureEvent(TemperatureEvent event)
     {
         System.out.println(name + " - Temperature: " + event.getTemperature() + "°C");
     } 
 
-    @Subscribe
+    @Subscribe(threadMode = ThreadMode.MAIN, sticky = true)
     public void handleWaterEvent(WaterLevelEvent event)
     {
         System.out.println(name+" - Water Level: "+event.getWaterLevel());
@@ -366,14 +1978,14 @@ class TextDisplay
         this.name=name;
     }
 
-    @Subscribe
+    @Subscribe(threadMode = ThreadMode.MAIN, sticky = true)
     public void handleWaterEvent(WaterLevelEvent event)
     {
         String text = event.getWaterLevel()<36 ?"All good ":"Run for your lives";
         System.out.println(name+" - "+text);
     }
 
-    @Subscribe
+    @Subscribe(threadMode = ThreadMode.MAIN, sticky = true)
     public void handleTemperatureEvent(TemperatureEvent event)
     {
         String text = event.getTemperature() <20 ? "Cold " :"Warm ";
@@ -409,11 +2021,199 @@ class HumanSubscriber
     }
 }
 
+class ChurnSubscriber
+{
+    private long received;
+
+    @Subscribe
+    public void handleTemperatureEvent(TemperatureEvent event)
+    {
+        received++;
+    }
+}
+
+class WeakChurnCheck
+{
+    private static final int ROUNDS = 30;
+    private static final int SUBSCRIBERS_PER_ROUND = 10_000;
+    private static final int POSTS_PER_ROUND = 200;
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        int rounds = args.length>0 ? Integer.parseInt(args[0]) : ROUNDS;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        EventBusImpl bus = new EventBusImpl("churn");
+        ChurnSubscriber anchor = new ChurnSubscriber();
+        bus.register(anchor);
+        Runtime runtime = Runtime.getRuntime();
+        long firstHeap = 0;
+        double firstLatency = 0;
+        long lastHeap = 0;
+        double lastLatency = 0;
+
+        for(int round=1; round<=rounds; round++)
+        {
+            for(int i=0; i<SUBSCRIBERS_PER_ROUND; i++)
+            {
+                bus.register(new ChurnSubscriber(), true);
+            }
+
+            System.gc();
+            Thread.sleep(50);
+
+            long start = System.nanoTime();
+            for(int i=0; i<POSTS_PER_ROUND; i++)
+            {
+                bus.post(new TemperatureEvent(null, i));
+            }
+            double latency = (System.nanoTime()-start)/1e3/POSTS_PER_ROUND;
+            long heap = runtime.totalMemory()-runtime.freeMemory();
+
+            console.printf("round %3d: heap=%6.1fMB post=%8.2fus%n", round, heap/1e6, latency);
+            if(round==2)
+            {
+                firstHeap=heap;
+                firstLatency=latency;
+            }
+            lastHeap=heap;
+            lastLatency=latency;
+        }
+
+        boolean flat = lastHeap<firstHeap*2+(16<<20) && lastLatency<firstLatency*3+50;
+        console.println(flat ? "PASS: heap and post latency stayed flat" : "FAIL: heap or post latency grew under churn");
+        if(!flat)
+        {
+            System.exit(1);
+        }
+    }
+}
+
+class TopicTrieBench
+{
+    private static final int[] SIZES = { 1_000, 10_000, 100_000 };
+    private static final int REGIONS = 1_000;
+    private static final int MATCHES = 2_000_000;
+
+    public static void main(String[] args)
+    {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        EventHandler<Event> handler = event -> {};
+
+        for(int size : SIZES)
+        {
+            EventBusImpl bus = new EventBusImpl("bench-" + size);
+            TopicTrie trie = new TopicTrie();
+            for(int i=0; i<size; i++)
+            {
+                String pattern = i%10==0 ? "sensors.region" + (i%REGIONS) + ".*" : "sensors.region" + (i%REGIONS) + ".s" + i;
+                trie.add(pattern, new Subscription(handler));
+                bus.subscribeTopic(pattern, handler);
+            }
+
+            String[] topics = new String[1024];
+            for(int i=0; i<topics.length; i++)
+            {
+                int id = (i*7919)%size;
+                topics[i] = "sensors.region" + (id%REGIONS) + ".s" + id;
+            }
+
+            long matched = 0;
+            for(int warmup=0; warmup<2; warmup++)
+            {
+                for(int i=0; i<MATCHES; i++)
+                {
+                    matched+=trie.match(topics[i&1023]).size();
+                }
+            }
+
+            long start = System.nanoTime();
+            for(int i=0; i<MATCHES; i++)
+            {
+                matched+=trie.match(topics[i&1023]).size();
+            }
+            double matchNanos = (double) (System.nanoTime()-start)/MATCHES;
+
+            int posts = MATCHES/10;
+            TemperatureEvent event = new TemperatureEvent(null, 0);
+            start = System.nanoTime();
+            for(int i=0; i<posts; i++)
+            {
+                bus.post(topics[i&1023], event);
+            }
+            double postNanos = (double) (System.nanoTime()-start)/posts;
+
+            int nodes = trie.nodeCount();
+            trie.removeIf(sub -> true);
+            console.printf("%7d subscriptions: match=%7.1fns post=%8.1fns results/match=%.1f nodes=%d after clear=%d%n", size, matchNanos, postNanos, matched/(3.0*MATCHES), nodes, trie.nodeCount());
+            bus.shutdown();
+        }
+    }
+}
+
+class RequestReplyBench
+{
+    private static final int[] CONCURRENCY = { 1, 100, 1_000, 10_000 };
+    private static final int REQUESTS = 100_000;
+
+    public static void main(String[] args)
+    {
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        EventBusImpl bus = new EventBusImpl("bench");
+        bus.registerHandle(StatusRequest.class, request -> request.reply("first"));
+        bus.registerHandle(StatusRequest.class, request -> request.reply("second"), ThreadMode.ASYNC);
+
+        run(bus, 1_000, 20_000, false);
+        for(int concurrency : CONCURRENCY)
+        {
+            console.println(run(bus, concurrency, REQUESTS, false));
+            console.println(run(bus, concurrency, REQUESTS, true));
+        }
+        bus.shutdown();
+    }
+
+    private static String run(EventBusImpl bus, int concurrency, int requests, boolean gather)
+    {
+        long[] latencies = new long[requests];
+        long start = System.nanoTime();
+        for(int sent=0; sent<requests; sent+=concurrency)
+        {
+            int batch = Math.min(concurrency, requests-sent);
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[batch];
+            for(int i=0; i<batch; i++)
+            {
+                int slot = sent+i;
+                long issued = System.nanoTime();
+                CompletableFuture<?> reply = gather ? bus.gather(new StatusRequest(), 5, TimeUnit.SECONDS) : bus.requestFirst(new StatusRequest(), 5, TimeUnit.SECONDS);
+                futures[i] = reply.thenRun(() -> latencies[slot] = System.nanoTime()-issued);
+            }
+            CompletableFuture.allOf(futures).join();
+        }
+        long elapsed = System.nanoTime()-start;
+
+        Arrays.sort(latencies);
+        return String.format("%-12s concurrency=%6d throughput=%9.0f req/s p50=%8.1fus p99=%8.1fus max=%9.1fus",
+            gather ? "gather" : "requestFirst", concurrency, requests/(elapsed/1e9),
+            latencies[requests/2]/1e3, latencies[requests*99/100]/1e3, latencies[requests-1]/1e3);
+    }
+}
+
 public class ReflectedEventBus
 {
-    public static void main(String[] args) 
+    public static void main(String[] args) throws IOException
     {
+        if(args.length>0)
+        {
+            DispatchProfiler.startRecording(Path.of(args[0]));
+        }
+
         EventBusImpl eventBus = EventBusImpl.getInstance();
+        EventBusImpl newsBus = new EventBusImpl("news", eventBus);
+        newsBus.forward(NewsEvent.class);
 
         NumericDisplay display1 = new NumericDisplay("Display 1");
         TextDisplay display2 = new TextDisplay("Display 2");
@@ -421,7 +2221,7 @@ public class ReflectedEventBus
 
         TemperatureSensor tempSensor = new TemperatureSensor("T1");
         WaterLevelSensor waterSensor = new WaterLevelSensor("W1");
-        NewsAgency newsAgency = new NewsAgency("ProTV");
+        NewsAgency newsAgency = new NewsAgency("ProTV", newsBus);
 
         eventBus.register(display1);
         eventBus.register(display2);
@@ -437,6 +2237,24 @@ public class ReflectedEventBus
             System.out.println("[Explicit] Water level detected: " + event.getWaterLevel());
         });
 
+        eventBus.registerHandle(WaterLevelEvent.class, event -> 
+        {
+            if(event.getWaterLevel()>90)
+            {
+                throw new IllegalStateException("Flood gauge offline");
+            }
+        });
+
+        newsBus.subscribeTopic("news.sports.*", event -> 
+        {
+            System.out.println("[Topic] Sports desk: " + ((NewsEvent) event).getContent());
+        });
+
+        eventBus.subscribeTopic("sensors.#", event -> 
+        {
+            System.out.println("[Topic] Sensor reading: " + event.getClass().getSimpleName());
+        });
+
         eventBus.post(new TemperatureEvent(tempSensor, 28));
         eventBus.post(new WaterLevelEvent(waterSensor, 50));
 
@@ -460,9 +2278,27 @@ public class ReflectedEventBus
             }
         }
 
+        eventBus.register(new NumericDisplay("Late Display"));
+
         System.out.println();
         newsAgency.publishNews("political");
         newsAgency.publishNews("sports");
         newsAgency.publishNews("culture");
+        newsAgency.publishNews("weather");
+
+        System.out.println();
+        eventBus.registerHandle(StatusRequest.class, request -> request.reply("Display 1 online"));
+        eventBus.registerHandle(StatusRequest.class, request -> request.reply("Display 2 online"));
+
+        eventBus.gather(new StatusRequest(), 500, TimeUnit.MILLISECONDS)
+            .thenAccept(replies -> System.out.println("Status replies: " + replies))
+            .join();
+
+        System.out.println("Dead letters: " + eventBus.getDeadLetters().snapshot());
+
+        if(args.length>0)
+        {
+            DispatchProfiler.stopRecording();
+        }
     }
 }